@@ -19,6 +19,9 @@ import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
 import java.util.UUID;
 
 public class BluetoothLeConnectionService extends Service {
@@ -35,6 +38,33 @@ public class BluetoothLeConnectionService extends Service {
     private static final int STATE_CONNECTING = 1;
     private static final int STATE_CONNECTED = 2;
 
+    // Compression is negotiated per connection and falls back to off on disconnect.
+    // All of this is only touched on the serviceHandler thread, GATT callbacks post to it.
+    private int mCompressionState = COMPRESSION_OFF;
+    private static final int COMPRESSION_OFF = 0;
+    private static final int COMPRESSION_NEGOTIATING = 1;
+    private static final int COMPRESSION_ON = 2;
+    private static final int COMPRESSION_DISABLING = 3; // off here, module not told yet
+    private static final long NEGOTIATION_TIMEOUT = 3000;
+    private final LzCodec.Encoder mEncoder = new LzCodec.Encoder();
+    private final LzCodec.Decoder mDecoder = new LzCodec.Decoder();
+    private final LzCodec.Stats mWriteStats = new LzCodec.Stats();
+    private final LzCodec.Stats mNotifyStats = new LzCodec.Stats();
+    private int mTxSequence;
+    private int mRxSequence;
+
+    // The characteristic write that is waiting for onCharacteristicWrite, if any. While
+    // compression is on, messages are queued behind it so no compressed chunk is dropped.
+    private int mWriteInFlight = WRITE_NONE;
+    private static final int WRITE_NONE = 0;
+    private static final int WRITE_PLAIN = 1;
+    private static final int WRITE_DATA = 2;
+    private static final int WRITE_ENABLE = 3;
+    private static final int WRITE_DISABLE = 4;
+    private int mWriteRawBytes;
+    private int mWriteFrameBytes;
+    private final Queue<String> mWriteQueue = new ArrayDeque<>();
+
     // Action strings for Intents that will tell this service what to do
     public final static String GATT_START_CONNECTION =
             "com.example.bluetoothledemo.GATT_START_CONNECTION";
@@ -44,6 +74,8 @@ public class BluetoothLeConnectionService extends Service {
             "com.example.bluetoothledemo.GATT_WRITE_MESSAGE";
     public final static String GATT_STOP_CONNECTION =
             "com.example.bluetoothledemo.GATT_STOP_CONNECTION";
+    public final static String GATT_SET_COMPRESSION =
+            "com.example.bluetoothledemo.GATT_SET_COMPRESSION";
 
     // These are Actions that this service will broadcast
     public final static String ACTION_GATT_CONNECTED =
@@ -54,6 +86,8 @@ public class BluetoothLeConnectionService extends Service {
             "com.example.bluetoothledemo.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE =
             "com.example.bluetoothledemo.ACTION_DATA_AVAILABLE";
+    public final static String ACTION_COMPRESSION_CHANGED =
+            "com.example.bluetoothledemo.ACTION_COMPRESSION_CHANGED";
     public final static String EXTRA_DATA =
             "com.example.bluetoothledemo.EXTRA_DATA";
 
@@ -65,6 +99,25 @@ public class BluetoothLeConnectionService extends Service {
     public final static UUID CUSTOM_CCCD =
             UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
+    // Framing on CUSTOM_CHARACTERISTIC. While compression is off nothing is framed and every
+    // value goes through untouched; only COMPRESSION_ENABLE from the app is special to the
+    // module. Once negotiated, the first byte of a write or notification tells what it is:
+    //   0x00 'L' 'Z' 0x01       control frame, request (or accept) compression
+    //   0x00 'L' 'Z' 0x00       control frame, stop (or reject) compression
+    //   0x01 seq data...        compressed data frame. seq counts data frames per direction
+    //                           from 0 after every negotiation, so a lost or repeated frame
+    //                           is detected.
+    //   anything else           plain value, sent when compressing would not make it smaller.
+    //                           It still joins the history on both sides but has no seq.
+    // A plain value starting with 0x00 or 0x01 is always sent compressed so it cannot be
+    // mistaken for a frame. The module echoes COMPRESSION_ENABLE back if it can decode LzCodec
+    // frames and answers with COMPRESSION_DISABLE otherwise. Either control frame restarts
+    // both codecs and sequence numbers on the module, and so does a disconnect.
+    private final static byte FRAME_CONTROL = 0x00;
+    private final static byte FRAME_DATA = 0x01;
+    private final static byte[] COMPRESSION_ENABLE = {FRAME_CONTROL, 'L', 'Z', 0x01};
+    private final static byte[] COMPRESSION_DISABLE = {FRAME_CONTROL, 'L', 'Z', 0x00};
+
     // empty constructor
     public BluetoothLeConnectionService() { }
 
@@ -135,6 +188,8 @@ public class BluetoothLeConnectionService extends Service {
                 break;
             case GATT_STOP_CONNECTION:
                 mBluetoothGatt.close();
+                // close() unregisters the callback, so there is no disconnect event
+                resetLink();
                 break;
             case GATT_WRITE_MESSAGE:
                 if(mBluetoothGatt != null && mConnectionState == STATE_CONNECTED) {
@@ -153,6 +208,13 @@ public class BluetoothLeConnectionService extends Service {
                     setNotification(enabled);
                 }
                 break;
+            case GATT_SET_COMPRESSION:
+                if(mBluetoothGatt != null && mConnectionState == STATE_CONNECTED) {
+                    boolean enabled = intent.getBooleanExtra("enabled", false);
+                    boolean result = setCompression(enabled);
+                    Log.d(TAG, "setCompression(...) "+ (result?"succeeded":"failed") +" initiation");
+                }
+                break;
         }
 
     }
@@ -178,6 +240,12 @@ public class BluetoothLeConnectionService extends Service {
 
                 mBluetoothDeviceAddress = null;
                 mConnectionState = STATE_DISCONNECTED;
+                serviceHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        resetLink();
+                    }
+                });
                 Intent intent = new Intent(ACTION_GATT_DISCONNECTED);
                 sendBroadcast(intent);
             }
@@ -211,12 +279,18 @@ public class BluetoothLeConnectionService extends Service {
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt,
                                           BluetoothGattCharacteristic characteristic,
-                                          int status) {
+                                          final int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 Log.i(TAG, "onCharacteristicWrite success!");
             } else {
                 Log.i(TAG, "onCharacteristicWrite failed! status: " + status);
             }
+            serviceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+                }
+            });
         }
 
         @Override
@@ -227,12 +301,133 @@ public class BluetoothLeConnectionService extends Service {
             // filter by the characteristic we want to listen to
             if(!CUSTOM_CHARACTERISTIC.equals(characteristic.getUuid())) return;
 
-            String value = new String(characteristic.getValue());
-            Log.d(TAG, "VALUE GOT: " + value);
+            // the characteristic is reused for the next notification, so keep a copy
+            final byte[] value = characteristic.getValue().clone();
+            serviceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onNotification(value);
+                }
+            });
+        }
+    };
+
+    /**
+     * Handles a notification from CUSTOM_CHARACTERISTIC on the serviceHandler thread.
+     */
+    private void onNotification(byte[] raw) {
+        if(mCompressionState == COMPRESSION_NEGOTIATING) {
+            if(Arrays.equals(raw, COMPRESSION_ENABLE)) {
+                serviceHandler.removeCallbacks(mNegotiationTimeout);
+                mCompressionState = COMPRESSION_ON;
+                Log.d(TAG, "compression negotiation accepted");
+                broadcastCompression();
+                return;
+            }
+            if(Arrays.equals(raw, COMPRESSION_DISABLE)) {
+                Log.d(TAG, "compression negotiation rejected");
+                resetCompression(COMPRESSION_OFF);
+                return;
+            }
+        } else if(mCompressionState == COMPRESSION_ON) {
+            if(Arrays.equals(raw, COMPRESSION_DISABLE)) {
+                Log.d(TAG, "compression turned off by the module");
+                resetCompression(COMPRESSION_OFF);
+                return;
+            }
+            if(raw.length > 0 && raw[0] == FRAME_DATA) {
+                if(raw.length < 2 || (raw[1] & 0xFF) != mRxSequence) {
+                    Log.w(TAG, "compressed notification out of sequence, turning compression off");
+                    setCompression(false);
+                    return;
+                }
+                byte[] decoded;
+                try {
+                    decoded = mDecoder.decode(Arrays.copyOfRange(raw, 2, raw.length));
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "failed to decode notification, turning compression off", e);
+                    setCompression(false);
+                    return;
+                }
+                mRxSequence = (mRxSequence + 1) & 0xFF;
+                mNotifyStats.record(decoded.length, raw.length);
+                Log.v(TAG, "notify compression: " + mNotifyStats);
+                // the rest of a split token comes in the next notification
+                if(decoded.length == 0) return;
+                raw = decoded;
+            } else {
+                try {
+                    mDecoder.append(raw);
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "plain notification inside a compressed one, turning compression off", e);
+                    setCompression(false);
+                    return;
+                }
+                mNotifyStats.record(raw.length, raw.length);
+            }
+        } else if(mCompressionState == COMPRESSION_DISABLING) {
+            if(Arrays.equals(raw, COMPRESSION_DISABLE)) {
+                mCompressionState = COMPRESSION_OFF;
+                return;
+            }
+            // the module is still compressing, remind it unless a write is in the way
+            if(raw.length > 0 && raw[0] == FRAME_DATA) {
+                Log.w(TAG, "dropping compressed notification, compression is being turned off");
+                if(mWriteInFlight == WRITE_NONE) sendDisable();
+                return;
+            }
+        }
+
+        String value = new String(raw);
+        Log.d(TAG, "VALUE GOT: " + value);
 
-            final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
-            intent.putExtra(EXTRA_DATA, value);
-            sendBroadcast(intent);
+        final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+        intent.putExtra(EXTRA_DATA, value);
+        sendBroadcast(intent);
+    }
+
+    /**
+     * Handles the result of a characteristic write on the serviceHandler thread. A compressed
+     * chunk only becomes part of the encoder history once the module has received it. Then
+     * a pending COMPRESSION_DISABLE is retried, or the next queued message is written.
+     */
+    private void onWriteComplete(boolean success) {
+        int kind = mWriteInFlight;
+        mWriteInFlight = WRITE_NONE;
+
+        if((kind == WRITE_DATA || kind == WRITE_PLAIN) && mEncoder.hasPending()) {
+            if(success) {
+                mEncoder.commit();
+                if(kind == WRITE_DATA) mTxSequence = (mTxSequence + 1) & 0xFF;
+            } else {
+                mEncoder.rollback();
+            }
+        }
+        if(success && (kind == WRITE_DATA || kind == WRITE_PLAIN) && mCompressionState == COMPRESSION_ON) {
+            mWriteStats.record(mWriteRawBytes, mWriteFrameBytes);
+            Log.v(TAG, "write compression: " + mWriteStats);
+        }
+        if(kind == WRITE_ENABLE && !success && mCompressionState == COMPRESSION_NEGOTIATING) {
+            resetCompression(COMPRESSION_OFF);
+        }
+        if(kind == WRITE_DISABLE && success && mCompressionState == COMPRESSION_DISABLING) {
+            mCompressionState = COMPRESSION_OFF;
+        }
+
+        if(mCompressionState == COMPRESSION_DISABLING) {
+            sendDisable();
+        } else if(!mWriteQueue.isEmpty()) {
+            String message = mWriteQueue.poll();
+            if(!write(message)) Log.w(TAG, "dropping queued message, write(...) failed initiation");
+        }
+    }
+
+    private final Runnable mNegotiationTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if(mCompressionState != COMPRESSION_NEGOTIATING) return;
+            Log.d(TAG, "compression negotiation timed out");
+            setCompression(false);
         }
     };
 
@@ -255,15 +450,123 @@ public class BluetoothLeConnectionService extends Service {
     /**
      * prerequisite: mBluetoothGatt != null
      * prerequisite: all services on the device to have been read
-     * @return true if write is initiated successfully. The result is reported asynchronously in onCharacteristicWrite(...)
+     * @return true if write is initiated successfully, or queued behind the write in flight
+     *         while compression is on. The result is reported asynchronously in onCharacteristicWrite(...)
      */
     private boolean write(String message) {
         if(mBluetoothGatt == null) return false;
 
+        if(mCompressionState == COMPRESSION_ON && mWriteInFlight != WRITE_NONE) {
+            Log.d(TAG, "write in flight, queueing message");
+            mWriteQueue.add(message);
+            return true;
+        }
+
+        byte[] raw = message.getBytes();
+        if(mCompressionState != COMPRESSION_ON)
+            return writeValue(WRITE_PLAIN, raw, raw.length);
+
+        byte[] encoded = mEncoder.encode(raw);
+        boolean framed = raw.length > 0 && (raw[0] == FRAME_CONTROL || raw[0] == FRAME_DATA);
+        boolean result;
+        if(!framed && encoded.length + 2 >= raw.length) {
+            // not worth compressing, send it plain, it still goes into the history
+            result = writeValue(WRITE_PLAIN, raw, raw.length);
+        } else {
+            byte[] frame = new byte[encoded.length + 2];
+            frame[0] = FRAME_DATA;
+            frame[1] = (byte) mTxSequence;
+            System.arraycopy(encoded, 0, frame, 2, encoded.length);
+            result = writeValue(WRITE_DATA, frame, raw.length);
+        }
+        if(!result) mEncoder.rollback();
+        return result;
+    }
+
+    /**
+     * Writes a value to CUSTOM_CHARACTERISTIC and remembers what kind of write is in flight.
+     * prerequisite: mBluetoothGatt != null
+     * @return true if the write is initiated successfully
+     */
+    private boolean writeValue(int kind, byte[] value, int rawBytes) {
         BluetoothGattService mSVC = mBluetoothGatt.getService(CUSTOM_SERVICE);
         BluetoothGattCharacteristic mCH = mSVC.getCharacteristic(CUSTOM_CHARACTERISTIC);
-        mCH.setValue(message);
-        return mBluetoothGatt.writeCharacteristic(mCH);
+        mCH.setValue(value);
+
+        mWriteStats.begin();
+        if(!mBluetoothGatt.writeCharacteristic(mCH)) return false;
+        mWriteInFlight = kind;
+        mWriteRawBytes = rawBytes;
+        mWriteFrameBytes = value.length;
+        return true;
+    }
+
+    /**
+     * Asks the module to start or stop compressing traffic on CUSTOM_CHARACTERISTIC.
+     * Enabling only takes effect once the module echoes the request back, so notifications
+     * must already be on, and gives up after NEGOTIATION_TIMEOUT. Enabling is ignored unless
+     * compression is off. Disabling stops compression on this side right away and keeps
+     * sending COMPRESSION_DISABLE until the module has received it.
+     * prerequisite: mBluetoothGatt != null
+     * @return true if the control frame write is initiated successfully
+     */
+    private boolean setCompression(boolean enable) {
+        if(mBluetoothGatt == null) return false;
+
+        if(enable) {
+            if(mCompressionState != COMPRESSION_OFF) return false;
+            if(!writeValue(WRITE_ENABLE, COMPRESSION_ENABLE, 0)) return false;
+            resetCompression(COMPRESSION_NEGOTIATING);
+            serviceHandler.postDelayed(mNegotiationTimeout, NEGOTIATION_TIMEOUT);
+            return true;
+        }
+
+        if(mCompressionState != COMPRESSION_ON && mCompressionState != COMPRESSION_NEGOTIATING) return false;
+        resetCompression(COMPRESSION_DISABLING);
+        return sendDisable();
+    }
+
+    /**
+     * Writes COMPRESSION_DISABLE. If it cannot be written now, it is retried when the write in
+     * flight completes or the module sends another compressed notification.
+     */
+    private boolean sendDisable() {
+        boolean result = writeValue(WRITE_DISABLE, COMPRESSION_DISABLE, 0);
+        if(!result) Log.d(TAG, "COMPRESSION_DISABLE failed initiation, will retry");
+        return result;
+    }
+
+    /**
+     * Moves to the given compression state with both codecs starting from an empty history.
+     * Tells the app if compression was on or being negotiated before.
+     */
+    private void resetCompression(int state) {
+        boolean wasEnabled = mCompressionState == COMPRESSION_ON || mCompressionState == COMPRESSION_NEGOTIATING;
+        serviceHandler.removeCallbacks(mNegotiationTimeout);
+        mCompressionState = state;
+        mEncoder.reset();
+        mDecoder.reset();
+        mWriteStats.reset();
+        mNotifyStats.reset();
+        mTxSequence = 0;
+        mRxSequence = 0;
+        if(wasEnabled) broadcastCompression();
+    }
+
+    /**
+     * Forgets everything tied to the current connection, compression is negotiated again
+     * on the next one.
+     */
+    private void resetLink() {
+        mWriteQueue.clear();
+        mWriteInFlight = WRITE_NONE;
+        resetCompression(COMPRESSION_OFF);
+    }
+
+    private void broadcastCompression() {
+        Intent intent = new Intent(ACTION_COMPRESSION_CHANGED);
+        intent.putExtra("enabled", mCompressionState == COMPRESSION_ON);
+        sendBroadcast(intent);
     }
 
     /**
@@ -283,6 +586,9 @@ public class BluetoothLeConnectionService extends Service {
             return false;
         }
 
+        // every connection starts uncompressed
+        resetLink();
+
         // Previously connected device.  Try to reconnect.
         if (address.equals(mBluetoothDeviceAddress) && mBluetoothGatt != null) {
             Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
@@ -0,0 +1,267 @@
+package com.example.bluetoothledemo;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+
+/**
+ * Small streaming LZ codec for payloads sent over CUSTOM_CHARACTERISTIC.
+ *
+ * The format is byte oriented so the decoder on the module side only needs a
+ * 256 byte history buffer and no tables:
+ *   0xxxxxxx                  literal run, (x + 1) raw bytes follow
+ *   1xxxxxxx oooooooo         match, copy (x + 3) bytes starting (o + 1) bytes back
+ *
+ * Both the encoder and decoder keep their history between chunks, so a payload can be
+ * fed in as it arrives and matches may reach back into earlier chunks. Each chunk given
+ * to the encoder is fully flushed, so its output can be written to the link right away.
+ * The encoder only adds a chunk to its history once it is committed, so a chunk that
+ * never reached the other side can be rolled back without the two histories drifting.
+ */
+public class LzCodec {
+    public static final int WINDOW_SIZE = 256;
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = MIN_MATCH + 0x7F;
+    private static final int MAX_LITERALS = 0x80;
+
+    // empty constructor
+    private LzCodec() { }
+
+    /**
+     * Keeps byte counts and transfer time so that the compression ratio and the effective
+     * throughput can be reported. The encoded count should be the bytes that went on air,
+     * framing included. Each recorded chunk is timed from the mark set by
+     * {@link #begin()} or, if there was none, by the previous record. Bytes of a chunk with
+     * no mark before it are counted in the ratio but not in the throughput.
+     */
+    public static class Stats {
+        private long rawBytes;
+        private long encodedBytes;
+        private long timedRawBytes;
+        private long elapsedNanos;
+        private long markNanos = -1;
+
+        /**
+         * Marks the start of a transfer, e.g. when a write is handed to the stack.
+         */
+        public void begin() {
+            markNanos = System.nanoTime();
+        }
+
+        /**
+         * Records a chunk whose transfer has just completed.
+         */
+        public void record(int raw, int encoded) {
+            long now = System.nanoTime();
+            if (markNanos >= 0) {
+                elapsedNanos += now - markNanos;
+                timedRawBytes += raw;
+            }
+            markNanos = now;
+            rawBytes += raw;
+            encodedBytes += encoded;
+        }
+
+        public void reset() {
+            rawBytes = 0;
+            encodedBytes = 0;
+            timedRawBytes = 0;
+            elapsedNanos = 0;
+            markNanos = -1;
+        }
+
+        public long getRawBytes() {
+            return rawBytes;
+        }
+
+        public long getEncodedBytes() {
+            return encodedBytes;
+        }
+
+        /**
+         * @return raw size divided by encoded size, or 1 if nothing has been transferred yet
+         */
+        public double getRatio() {
+            if (encodedBytes == 0) return 1.0;
+            return (double) rawBytes / encodedBytes;
+        }
+
+        /**
+         * @return uncompressed bytes per second over the timed chunks, or 0 if nothing has
+         *         been timed yet
+         */
+        public double getThroughput() {
+            if (elapsedNanos <= 0) return 0;
+            return timedRawBytes * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return rawBytes + " -> " + encodedBytes + " bytes, ratio "
+                    + String.format(Locale.US, "%.2f", getRatio()) + ", "
+                    + String.format(Locale.US, "%.1f", getThroughput()) + " B/s";
+        }
+    }
+
+    public static class Encoder {
+        // last WINDOW_SIZE bytes of committed input
+        private byte[] history = new byte[0];
+        // history to switch to once the chunk returned by the last encode is committed
+        private byte[] pendingHistory;
+
+        public void reset() {
+            history = new byte[0];
+            pendingHistory = null;
+        }
+
+        public boolean hasPending() {
+            return pendingHistory != null;
+        }
+
+        /**
+         * Adds the last encoded chunk to the history. Call once the other side has
+         * received it.
+         */
+        public void commit() {
+            if (pendingHistory == null) throw new IllegalStateException("no chunk to commit");
+            history = pendingHistory;
+            pendingHistory = null;
+        }
+
+        /**
+         * Drops the last encoded chunk, e.g. because its write failed. The next chunk is
+         * encoded against the same history as the dropped one.
+         */
+        public void rollback() {
+            pendingHistory = null;
+        }
+
+        /**
+         * Compresses the next chunk of a payload. The chunk stays pending until
+         * {@link #commit()} or {@link #rollback()} is called.
+         * @return the encoded bytes for this chunk, ready to be written
+         * @throws IllegalStateException if the previous chunk is still pending
+         */
+        public byte[] encode(byte[] chunk) {
+            if (pendingHistory != null) throw new IllegalStateException("previous chunk is still pending");
+
+            byte[] buf = new byte[history.length + chunk.length];
+            System.arraycopy(history, 0, buf, 0, history.length);
+            System.arraycopy(chunk, 0, buf, history.length, chunk.length);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(chunk.length + chunk.length / MAX_LITERALS + 1);
+            int literalStart = history.length;
+            int pos = history.length;
+            while (pos < buf.length) {
+                int bestLength = 0;
+                int bestOffset = 0;
+                int maxLength = Math.min(MAX_MATCH, buf.length - pos);
+                if (maxLength >= MIN_MATCH) {
+                    for (int offset = 1; offset <= WINDOW_SIZE && offset <= pos; offset++) {
+                        int length = 0;
+                        // source may run into the bytes being produced, the decoder copies byte by byte
+                        while (length < maxLength && buf[pos - offset + length] == buf[pos + length])
+                            length++;
+                        if (length > bestLength) {
+                            bestLength = length;
+                            bestOffset = offset;
+                            if (length == maxLength) break;
+                        }
+                    }
+                }
+
+                if (bestLength >= MIN_MATCH) {
+                    writeLiterals(out, buf, literalStart, pos);
+                    out.write(0x80 | (bestLength - MIN_MATCH));
+                    out.write(bestOffset - 1);
+                    pos += bestLength;
+                    literalStart = pos;
+                } else {
+                    pos++;
+                }
+            }
+            writeLiterals(out, buf, literalStart, pos);
+
+            int keep = Math.min(WINDOW_SIZE, buf.length);
+            pendingHistory = new byte[keep];
+            System.arraycopy(buf, buf.length - keep, pendingHistory, 0, keep);
+
+            return out.toByteArray();
+        }
+
+        private static void writeLiterals(ByteArrayOutputStream out, byte[] buf, int start, int end) {
+            while (start < end) {
+                int run = Math.min(MAX_LITERALS, end - start);
+                out.write(run - 1);
+                out.write(buf, start, run);
+                start += run;
+            }
+        }
+    }
+
+    public static class Decoder {
+        private final byte[] window = new byte[WINDOW_SIZE];
+        private int windowPos = 0;
+        private int literalsLeft = 0;   // raw bytes still expected from the current literal run
+        private int pendingMatch = -1;  // match length waiting for its offset byte
+        private long decodedBytes = 0;
+
+        public void reset() {
+            windowPos = 0;
+            literalsLeft = 0;
+            pendingMatch = -1;
+            decodedBytes = 0;
+        }
+
+        /**
+         * Decompresses the next chunk received from the link. A token may be split across
+         * chunks, in which case its output is returned once the rest of it arrives.
+         * @return the decoded bytes that this chunk completed
+         * @throws IllegalStateException if a match refers to data that was never received
+         */
+        public byte[] decode(byte[] chunk) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(chunk.length * 2);
+            for (byte b : chunk) {
+                int value = b & 0xFF;
+                if (literalsLeft > 0) {
+                    emit(out, b);
+                    literalsLeft--;
+                } else if (pendingMatch >= 0) {
+                    int offset = value + 1;
+                    if (offset > decodedBytes + out.size())
+                        throw new IllegalStateException("match offset " + offset + " is past the start of the stream");
+                    for (int i = 0; i < pendingMatch; i++)
+                        emit(out, window[(windowPos - offset) & (WINDOW_SIZE - 1)]);
+                    pendingMatch = -1;
+                } else if ((value & 0x80) == 0) {
+                    literalsLeft = value + 1;
+                } else {
+                    pendingMatch = (value & 0x7F) + MIN_MATCH;
+                }
+            }
+
+            decodedBytes += out.size();
+            return out.toByteArray();
+        }
+
+        /**
+         * Adds bytes that were sent uncompressed to the history, so that later matches can
+         * refer to them. Pairs with committing an encoded chunk that was sent as is.
+         * @throws IllegalStateException if a token is still waiting for the rest of its bytes
+         */
+        public void append(byte[] plain) {
+            if (literalsLeft > 0 || pendingMatch >= 0)
+                throw new IllegalStateException("plain bytes in the middle of a token");
+            for (byte b : plain) {
+                window[windowPos] = b;
+                windowPos = (windowPos + 1) & (WINDOW_SIZE - 1);
+            }
+            decodedBytes += plain.length;
+        }
+
+        private void emit(ByteArrayOutputStream out, byte b) {
+            out.write(b);
+            window[windowPos] = b;
+            windowPos = (windowPos + 1) & (WINDOW_SIZE - 1);
+        }
+    }
+}
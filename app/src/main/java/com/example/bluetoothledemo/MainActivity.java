@@ -47,6 +47,7 @@ public class MainActivity extends AppCompatActivity {
         // Register for broadcasts
         IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothLeConnectionService.ACTION_DATA_AVAILABLE);
+        filter.addAction(BluetoothLeConnectionService.ACTION_COMPRESSION_CHANGED);
         registerReceiver(mReceiver, filter);
     }
 
@@ -87,6 +88,13 @@ public class MainActivity extends AppCompatActivity {
             intent.putExtra("message", "ping");
             startService(intent);
 
+        } else if(id == R.id.enableCompression) {
+            Log.d(TAG, "enabling compression");
+            Intent intent = new Intent(this, BluetoothLeConnectionService.class);
+            intent.setAction(BluetoothLeConnectionService.GATT_SET_COMPRESSION);
+            intent.putExtra("enabled", true);
+            startService(intent);
+
         } else if(id == R.id.stopService) {
             Log.d(TAG, "stopping service");
             Intent intent = new Intent(this, BluetoothLeConnectionService.class);
@@ -107,6 +115,10 @@ public class MainActivity extends AppCompatActivity {
                 String msg = intent.getStringExtra(BluetoothLeConnectionService.EXTRA_DATA);
 
                 Toast.makeText(getApplicationContext(),"message received: " + msg, Toast.LENGTH_SHORT).show();
+            } else if(BluetoothLeConnectionService.ACTION_COMPRESSION_CHANGED.equals(action)) {
+                boolean enabled = intent.getBooleanExtra("enabled", false);
+
+                Toast.makeText(getApplicationContext(),"compression " + (enabled?"enabled":"disabled"), Toast.LENGTH_SHORT).show();
             }
 
         }
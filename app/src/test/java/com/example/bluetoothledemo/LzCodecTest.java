@@ -0,0 +1,143 @@
+package com.example.bluetoothledemo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class LzCodecTest {
+    // synthetic sensor log dump, generated to look like the firmware's log output
+    private static final String SAMPLE_LOG = "sample_log.txt";
+    // largest value the HM-10 takes in a single write
+    private static final int HM10_CHUNK = 20;
+    // FRAME_DATA and sequence byte in front of every compressed write
+    private static final int FRAME_HEADER = 2;
+
+    @Test
+    public void roundTripWithArbitrarySplits() throws IOException {
+        Random random = new Random(26);
+        byte[] noise = new byte[4000];
+        random.nextBytes(noise);
+
+        for (byte[] input : Arrays.asList(readSample(), noise)) {
+            for (int run = 0; run < 20; run++) {
+                LzCodec.Encoder encoder = new LzCodec.Encoder();
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                int pos = 0;
+                while (pos < input.length) {
+                    int length = Math.min(input.length - pos, 1 + random.nextInt(300));
+                    byte[] chunk = encoder.encode(Arrays.copyOfRange(input, pos, pos + length));
+                    encoder.commit();
+                    encoded.write(chunk, 0, chunk.length);
+                    pos += length;
+                }
+
+                // split the encoded stream at any byte, including inside a token
+                byte[] stream = encoded.toByteArray();
+                LzCodec.Decoder decoder = new LzCodec.Decoder();
+                ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                pos = 0;
+                while (pos < stream.length) {
+                    int length = Math.min(stream.length - pos, 1 + random.nextInt(HM10_CHUNK));
+                    byte[] chunk = decoder.decode(Arrays.copyOfRange(stream, pos, pos + length));
+                    decoded.write(chunk, 0, chunk.length);
+                    pos += length;
+                }
+
+                assertArrayEquals(input, decoded.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void rolledBackChunkIsNotReferenced() {
+        byte[] first = "temp=22.5C hum=43.2%\n".getBytes();
+        byte[] dropped = "temp=22.6C hum=43.1%\n".getBytes();
+        byte[] third = "temp=22.6C hum=43.1%\n".getBytes();
+
+        LzCodec.Encoder encoder = new LzCodec.Encoder();
+        LzCodec.Decoder decoder = new LzCodec.Decoder();
+        byte[] decodedFirst = decoder.decode(encoder.encode(first));
+        encoder.commit();
+        encoder.encode(dropped);
+        encoder.rollback();
+        assertFalse(encoder.hasPending());
+        byte[] decodedThird = decoder.decode(encoder.encode(third));
+        encoder.commit();
+
+        assertArrayEquals(first, decodedFirst);
+        assertArrayEquals(third, decodedThird);
+    }
+
+    @Test
+    public void appendedPlainBytesCanBeReferenced() {
+        byte[] plain = "temp=22.5C\n".getBytes();
+        byte[] next = "temp=22.5C\n".getBytes();
+
+        LzCodec.Encoder encoder = new LzCodec.Encoder();
+        LzCodec.Decoder decoder = new LzCodec.Decoder();
+        encoder.encode(plain);
+        encoder.commit();
+        decoder.append(plain);
+        byte[] encoded = encoder.encode(next);
+        encoder.commit();
+
+        assertTrue(encoded.length < next.length);
+        assertArrayEquals(next, decoder.decode(encoded));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void encodeWhilePendingFails() {
+        LzCodec.Encoder encoder = new LzCodec.Encoder();
+        encoder.encode("ping".getBytes());
+        encoder.encode("ping".getBytes());
+    }
+
+    @Test
+    public void framedRatioOnSampleLog() throws IOException {
+        byte[] input = readSample();
+
+        // message sizes that fill a 20 byte HM-10 write once framed, and two larger ones
+        for (int chunkSize : new int[] {HM10_CHUNK - FRAME_HEADER, 64, 256}) {
+            LzCodec.Encoder encoder = new LzCodec.Encoder();
+            LzCodec.Stats stats = new LzCodec.Stats();
+            for (int pos = 0; pos < input.length; pos += chunkSize) {
+                byte[] chunk = Arrays.copyOfRange(input, pos, Math.min(input.length, pos + chunkSize));
+                byte[] encoded = encoder.encode(chunk);
+                // same rule as BluetoothLeConnectionService.write(...), plain if not smaller
+                encoder.commit();
+                if (encoded.length + FRAME_HEADER >= chunk.length)
+                    stats.record(chunk.length, chunk.length);
+                else
+                    stats.record(chunk.length, encoded.length + FRAME_HEADER);
+            }
+
+            assertTrue(String.format(Locale.US, "%d byte messages: %s", chunkSize, stats),
+                    stats.getRatio() > 1.3);
+        }
+    }
+
+    private byte[] readSample() throws IOException {
+        InputStream in = getClass().getClassLoader().getResourceAsStream(SAMPLE_LOG);
+        assertNotNull(in);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int read;
+            while ((read = in.read(buf)) != -1)
+                out.write(buf, 0, read);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}